@@ -1,6 +1,8 @@
 package hepker.ai;
 
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class utilizes lombok @Getter, @Setter Member variables all have getters and setters.
@@ -25,6 +27,10 @@ public final class Agent {
     private double currentQ = 0.0;
     private double maxQPrime = 0.0;
     private String stateKey;
+    private Planner planner;
+    private DeadlineFallback deadlineFallback = DeadlineFallback.EXPLORE;
+    private int defaultAction = 0;
+    private final AtomicLong deadlineMisses = new AtomicLong();
 
     static {
         DATA_MANAGER = new DataManager();
@@ -67,8 +73,14 @@ public final class Agent {
      *                        the return value of getActionInt()
      */
     public void processData(String stateKeyPrime, int actionChoiceInt) {
-        calculateMaxQPrime(stateKeyPrime);
-        updateQValue(actionChoiceInt);
+        if (planner == null) {
+            calculateMaxQPrime(stateKeyPrime);
+            updateQValue(actionChoiceInt);
+        } else {
+            double[] qValuesPrime = calculateQValuesPrime(stateKeyPrime);
+            double updatedQ = updateQValue(actionChoiceInt);
+            planner.recordTransition(stateKey, actionChoiceInt, stateKeyPrime, rho, updatedQ, qValuesPrime);
+        }
     }
 
     /**
@@ -87,6 +99,29 @@ public final class Agent {
         }
     }
 
+    /**
+     * Deadline-bounded variant of getActionInt(). If the Q-table cannot be read within timeBudget, e.g.
+     * while a flush holds the SQLite write lock, or the read fails, the decision is made by the
+     * DeadlineFallback set with setDeadlineFallback() and the miss is counted by getDeadlineMissCount()
+     *
+     * @param numDecisions The upper limit of the number of decisions the Agent has to choose
+     *                     from. Exclusive
+     * @param timeBudget Maximum time to wait for the Q-table lookup
+     * @param unit TimeUnit of timeBudget
+     * @return An int value of [0, numDecisions)
+     */
+    public int getActionInt(int numDecisions, long timeBudget, TimeUnit unit) {
+        if (Math.random() < epsilon) {
+            return explore(numDecisions);
+        }
+        int actionInt = DATA_MANAGER.getMaxQIndex(stateKey, unit.toNanos(timeBudget));
+        if (actionInt == DataManager.NO_ACTION) {
+            deadlineMisses.incrementAndGet();
+            return fallback(numDecisions);
+        }
+        return actionInt;
+    }
+
     /**
      * Retrieves Q(S,a) value from memory and sets this.currentQ
      *
@@ -115,6 +150,17 @@ public final class Agent {
         }
     }
 
+    /**
+     * Pushes all queued Q-values, then compiles the best-known action of every stored state into an
+     * immutable file readable by Policy. Use for inference-only services where epsilon would be 0.0
+     *
+     * @param filePath Location the Policy file will be written to
+     * @return True if the Policy file was written, else false
+     */
+    public static boolean exportPolicy(String filePath) {
+        return DATA_MANAGER.exportPolicy(filePath);
+    }
+
     /**
      * Getter for retrieving the number of Q-values waiting to be stored into memory by pushQTableUpdate().
      * Size is stored as a member variable int, which is incremented, decremented, and set to zero accordingly
@@ -135,6 +181,17 @@ public final class Agent {
         DATA_MANAGER.setBatchSize(cacheSize);
     }
 
+    /**
+     * Sets the number of states whose best action is remembered for DeadlineFallback.CACHED_ACTION.
+     * Actions are remembered by successful deadline-bounded getActionInt() lookups, and the least recently
+     * used states are forgotten first. Defaults to 10,000
+     *
+     * @param capacity Maximum number of remembered states. Must be at least 1
+     */
+    public static void setCachedActionCapacity(int capacity) {
+        DATA_MANAGER.setLastKnownActionCapacity(capacity);
+    }
+
     /**
      * Gets the gamma value.
      *
@@ -230,6 +287,119 @@ public final class Agent {
         return stateKey;
     }
 
+    /**
+     * Starts a background prioritized-sweeping planner for this Agent. Every transition passed to
+     * processData() is recorded into a model, which a daemon thread replays by Bellman error to make
+     * additional Q-value updates between real environment steps. Uses a priority threshold of 0.01 and
+     * a model of at most 1,000,000 state-action pairs
+     *
+     * @param cpuBudget Fraction (0.0, 1.0] of one core the planning thread may occupy
+     */
+    public void startPlanner(double cpuBudget) {
+        startPlanner(cpuBudget, 0.01, 1_000_000);
+    }
+
+    /**
+     * Starts a background prioritized-sweeping planner for this Agent, replacing any running planner.
+     * The model holds at most 1,000,000 state-action pairs
+     *
+     * @param cpuBudget Fraction (0.0, 1.0] of one core the planning thread may occupy
+     * @param priorityThreshold Minimum Bellman error for a recorded transition to be replayed. Must be
+     *                          greater than 0.0
+     */
+    public void startPlanner(double cpuBudget, double priorityThreshold) {
+        startPlanner(cpuBudget, priorityThreshold, 1_000_000);
+    }
+
+    /**
+     * Starts a background prioritized-sweeping planner for this Agent, replacing any running planner.
+     * The model holds at most maxPairs state-action pairs and maxPairs states. Once either limit is
+     * reached, new states and actions are no longer modelled, while those already modelled keep being
+     * planned
+     *
+     * @param cpuBudget Fraction (0.0, 1.0] of one core the planning thread may occupy
+     * @param priorityThreshold Minimum Bellman error for a recorded transition to be replayed. Must be
+     *                          greater than 0.0
+     * @param maxPairs Maximum number of state-action pairs, and of states, held by the model
+     */
+    public void startPlanner(double cpuBudget, double priorityThreshold, int maxPairs) {
+        stopPlanner();
+        Planner newPlanner = new Planner(this, DATA_MANAGER, cpuBudget, priorityThreshold, maxPairs);
+        newPlanner.start();
+        this.planner = newPlanner;
+    }
+
+    /**
+     * Stops this Agent's planner, if one is running. Call before pushQTableUpdate() at the end of training.
+     * closeDatabase() also stops every running planner
+     */
+    public void stopPlanner() {
+        if (planner != null) {
+            planner.stop();
+            planner = null;
+        }
+    }
+
+    /**
+     * Getter for the number of Q-value updates made by this Agent's planner
+     *
+     * @return Number of planned updates, or 0 if no planner is running
+     */
+    public long getPlannerUpdateCount() {
+        return planner == null ? 0 : planner.getUpdateCount();
+    }
+
+    /**
+     * Gets the strategy used when a deadline-bounded getActionInt() misses its deadline
+     *
+     * @return The DeadlineFallback held by Agent
+     */
+    public DeadlineFallback getDeadlineFallback() {
+        return deadlineFallback;
+    }
+
+    /**
+     * Sets the strategy used when a deadline-bounded getActionInt() misses its deadline. Defaults to
+     * DeadlineFallback.EXPLORE
+     *
+     * @param updatedFallback the new DeadlineFallback
+     */
+    public void setDeadlineFallback(DeadlineFallback updatedFallback) {
+        this.deadlineFallback = updatedFallback;
+    }
+
+    /**
+     * Gets the action returned by DeadlineFallback.DEFAULT_ACTION
+     *
+     * @return The default action held by Agent
+     */
+    public int getDefaultAction() {
+        return defaultAction;
+    }
+
+    /**
+     * Sets the action returned by DeadlineFallback.DEFAULT_ACTION, and by DeadlineFallback.CACHED_ACTION
+     * when the state has no cached action. Defaults to 0. Clamped to numDecisions - 1 when a call to
+     * getActionInt() offers fewer decisions
+     *
+     * @param updatedDefaultAction the new default action. Must not be negative
+     */
+    public void setDefaultAction(int updatedDefaultAction) {
+        if (updatedDefaultAction < 0) {
+            throw new IllegalArgumentException("Default action must not be negative, was " + updatedDefaultAction);
+        }
+        this.defaultAction = updatedDefaultAction;
+    }
+
+    /**
+     * Getter for the number of deadline-bounded getActionInt() calls that missed their deadline
+     *
+     * @return Number of decisions made by the DeadlineFallback
+     */
+    public long getDeadlineMissCount() {
+        return deadlineMisses.get();
+    }
+
     /**
      * Retrieves from memory the maximum possible Q value in the given state and sets maxQPrime
      *
@@ -242,6 +412,28 @@ public final class Agent {
         this.maxQPrime = DATA_MANAGER.getMaxQValue(stateKeyPrimeString);
     }
 
+    /**
+     * Retrieves from memory every Q-value in the given state and sets maxQPrime. Used instead of
+     * calculateMaxQPrime() while a planner is running, so the planner is seeded from the same query
+     *
+     * @param stateKeyPrimeString String representation of your post-action state
+     * @return Q-values indexed by action, NaN for actions without a row, or null if epsilon is 0.0
+     */
+    private double[] calculateQValuesPrime(String stateKeyPrimeString) {
+        if (epsilon == 0.0) {
+            return null;
+        }
+        double[] qValuesPrime = DATA_MANAGER.getQValues(stateKeyPrimeString);
+        double max = Double.NaN;
+        for (double qValue : qValuesPrime) {
+            if (!Double.isNaN(qValue)) {
+                max = Double.isNaN(max) ? qValue : Math.max(max, qValue);
+            }
+        }
+        this.maxQPrime = Double.isNaN(max) ? 0.0 : max;
+        return qValuesPrime;
+    }
+
     /**
      * Retrieves the best-known action to take in the given state. Requires that stateKey be properly set first
      * agentObject.setStateKey(yourString);
@@ -252,6 +444,27 @@ public final class Agent {
         return DATA_MANAGER.getMaxQIndex(stateKey);
     }
 
+    /**
+     * Helper that selects a decision according to deadlineFallback after a missed deadline. Cached and
+     * default actions are clamped to [0, numDecisions)
+     *
+     * @param numDecisions Exclusive upper bound for decision-making
+     * @return The fallback decision
+     */
+    private int fallback(int numDecisions) {
+        switch (deadlineFallback) {
+            case CACHED_ACTION:
+                int cachedAction = DATA_MANAGER.getLastKnownAction(stateKey);
+                int action = cachedAction == DataManager.NO_ACTION ? defaultAction : cachedAction;
+                return Math.min(action, numDecisions - 1);
+            case EXPLORE:
+                return explore(numDecisions);
+            case DEFAULT_ACTION:
+            default:
+                return Math.min(defaultAction, numDecisions - 1);
+        }
+    }
+
     /**
      * Helper that retrieves a random decision [0,numDecisions)
      *
@@ -277,11 +490,13 @@ public final class Agent {
      * Calculates the new q-value after the Agent's decision has been chosen and applied to the state
      *
      * @param actionInt Index of the Agent's most-recent decision
+     * @return The updated q-value
      */
-    private void updateQValue(int actionInt) {
+    private double updateQValue(int actionInt) {
         double updatedQ = currentQ + alpha * (rho + gamma * maxQPrime - currentQ);
         if (Math.abs(updatedQ - currentQ) > 0.01) {
             DATA_MANAGER.queueDataToCache(stateKey, actionInt, updatedQ);
         }
+        return updatedQ;
     }
 }
\ No newline at end of file
@@ -2,10 +2,20 @@ package hepker.ai;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -15,9 +25,22 @@ import java.util.concurrent.locks.ReentrantLock;
 final class DataManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(DataManager.class);
     private static final String SQL_KEY = "jdbc:sqlite:src/main/resources/data/q_values.db";
+    private static final int LOOKUP_THREADS = 2; // Below Hikari's pool of 4, see getMaxQIndex(serialKey, timeoutNanos)
+    private static final int MAX_PENDING_LOOKUPS = 64;
     private static int batchSize = 100;
+    private static int lastKnownActionCapacity = 10_000;
+
+    /**
+     * Returned by getMaxQIndex(serialKey, timeoutNanos) and getLastKnownAction() when no action is available
+     */
+    static final int NO_ACTION = -1;
 
     private final ConcurrentHashMap<String, double[]> updatedQValues;
+    private final LinkedHashMap<String, Integer> lastKnownActions;
+    private final ReentrantLock lastKnownActionsLock;
+    private final Set<Planner> planners;
+    private final ThreadPoolExecutor lookupExecutor;
+    private final ConcurrentHashMap<String, Future<Integer>> inFlightLookups;
     private final ReentrantLock reentrantLock;
     private final AtomicBoolean isShuttingDown;
     private final QValueRepository db;
@@ -38,6 +61,21 @@ final class DataManager {
         }
         this.db = tempDb;
         this.updatedQValues = new ConcurrentHashMap<>();
+        this.lastKnownActions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > lastKnownActionCapacity;
+            }
+        };
+        this.lastKnownActionsLock = new ReentrantLock();
+        this.planners = ConcurrentHashMap.newKeySet();
+        this.lookupExecutor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_LOOKUPS), runnable -> {
+                    Thread thread = new Thread(runnable, "jql-lookup");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.inFlightLookups = new ConcurrentHashMap<>();
         this.isShuttingDown = new AtomicBoolean(false);
         this.reentrantLock = new ReentrantLock();
         this.FAILURE_RETURN_VALUE = 0.0;
@@ -59,6 +97,85 @@ final class DataManager {
         }
     }
 
+    /**
+     * Retrieves the actionInt of the best possible action to take given state, giving up once
+     * timeoutNanos have elapsed. A lookup that misses its deadline is left to run, or to wait in the
+     * queue, so that getLastKnownAction() is warmed for the next call. At most one lookup per state is
+     * in flight, and calls made while the MAX_PENDING_LOOKUPS queue is full miss immediately.
+     * Abandoned lookups hold their Hikari connection until they finish, so the lookup pool is kept
+     * smaller than Hikari's pool to leave connections free for flushes and Q-value reads
+     *
+     * @param serialKey User-defined String representation of Agent's state
+     * @param timeoutNanos Maximum time, in nanoseconds, to wait for the Q-table
+     * @return Index of the best possible action to take in state serialKey, or NO_ACTION if the
+     * deadline passed first or the lookup failed
+     */
+    int getMaxQIndex(String serialKey, long timeoutNanos) {
+        Future<Integer> lookup;
+        try {
+            lookup = inFlightLookups.computeIfAbsent(serialKey, key -> lookupExecutor.submit(() -> {
+                try {
+                    return lookupMaxQIndex(key);
+                } finally {
+                    inFlightLookups.remove(key);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            if (lookupExecutor.isShutdown()) {
+                LOGGER.warn("Attempted Q-table lookup after shutdown initiated.");
+            }
+            return NO_ACTION;
+        }
+        try {
+            return lookup.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return NO_ACTION;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NO_ACTION;
+        } catch (ExecutionException e) {
+            LOGGER.error("Failed to get max Q index for serialKey: {}", serialKey, e.getCause());
+            return NO_ACTION;
+        }
+    }
+
+    /**
+     * Retrieves the best action found by the most recent successful getMaxQIndex(serialKey, timeoutNanos)
+     * of the given state. Only the lastKnownActionCapacity most recently used states are remembered
+     *
+     * @param serialKey User-defined String representation of Agent's state
+     * @return Last known best action in state serialKey, or NO_ACTION if it is not remembered
+     */
+    int getLastKnownAction(String serialKey) {
+        lastKnownActionsLock.lock();
+        try {
+            return lastKnownActions.getOrDefault(serialKey, NO_ACTION);
+        } finally {
+            lastKnownActionsLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the number of states whose last known best action is remembered for
+     * DeadlineFallback.CACHED_ACTION. Least recently used states are evicted first
+     *
+     * @param argCapacity Maximum number of remembered states
+     */
+    void setLastKnownActionCapacity(int argCapacity) {
+        if (argCapacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + argCapacity);
+        }
+        lastKnownActionsLock.lock();
+        try {
+            lastKnownActionCapacity = argCapacity;
+            while (lastKnownActions.size() > lastKnownActionCapacity) {
+                lastKnownActions.remove(lastKnownActions.keySet().iterator().next());
+            }
+        } finally {
+            lastKnownActionsLock.unlock();
+        }
+    }
+
     /**
      * Retrieves, if it exists, the learned Q-value of the chosen actionInt given state serialKey
      *
@@ -92,7 +209,24 @@ final class DataManager {
     }
 
     /**
-     * Queues a Q-value to be inserted into database
+     * From SQLite retrieves every stored q-value given Agent's state
+     *
+     * @param serialKey User-defined String representation of Agent's state
+     * @return Q-values indexed by action, NaN for actions without a row. Empty if none are stored or
+     * the query fails
+     */
+    double[] getQValues(String serialKey) {
+        try {
+            return db.getQValues(serialKey);
+        } catch (SQLException e) {
+            LOGGER.error("Failed to get Q values for serialKey: {}", serialKey, e);
+            return new double[0];
+        }
+    }
+
+    /**
+     * Queues a Q-value to be inserted into database. Action slots below actionIndex that have not been
+     * queued are held as NaN, which updateQTable() skips, so they never overwrite stored Q-values
      *
      * @param serialKey State of Agent
      * @param actionIndex Index of Action given Agent's state
@@ -107,8 +241,10 @@ final class DataManager {
             double[] resultArray;
             if (existingArray == null) {
                 resultArray = new double[actionIndex + 1];
+                Arrays.fill(resultArray, Double.NaN);
             } else if (actionIndex >= existingArray.length) {
                 resultArray = Arrays.copyOf(existingArray, actionIndex + 1);
+                Arrays.fill(resultArray, existingArray.length, actionIndex, Double.NaN);
             } else {
                 resultArray = existingArray.clone();
             }
@@ -139,29 +275,100 @@ final class DataManager {
     }
 
     /**
-     * Flushes queued values to the database
+     * Flushes queued values to the database. Only the entries that were written are removed from the
+     * cache; entries queued or replaced by another thread during the write stay queued for the next flush
+     *
+     * @return True if the queued values were written, false if the write failed
      */
-    void pushData() {
+    boolean pushData() {
         reentrantLock.lock();
         try {
             Map<String, double[]> snapshot = new ConcurrentHashMap<>(updatedQValues);
             if (!snapshot.isEmpty()) {
                 db.updateQTable(snapshot);
-                LOGGER.info("Updated QTable with {} entries", updatedQValues.size());
-                updatedQValues.clear();
+                LOGGER.info("Updated QTable with {} entries", snapshot.size());
+                snapshot.forEach(updatedQValues::remove);
             }
+            return true;
         } catch (SQLException e) {
             LOGGER.error("Failed to update QTable with {} entries", updatedQValues.size(), e);
+            return false;
         } finally {
             reentrantLock.unlock();
         }
     }
 
+    /**
+     * Flushes queued values, then compiles the greedy action of every stored state into a read-only
+     * Policy file. The export is aborted if the flush fails, so that stale Q-values are never exported
+     *
+     * @param filePath Location the Policy file will be written to
+     * @return True if the Policy file was written, else false
+     */
+    boolean exportPolicy(String filePath) {
+        if (!pushData()) {
+            LOGGER.error("Aborted Policy export to {}: queued Q-values could not be flushed", filePath);
+            return false;
+        }
+        try {
+            Map<String, Integer> greedyActions = db.getGreedyActions();
+            Policy.write(greedyActions, filePath);
+            LOGGER.info("Exported Policy with {} states to {}", greedyActions.size(), filePath);
+            return true;
+        } catch (SQLException e) {
+            LOGGER.error("Failed to read greedy actions for Policy export", e);
+        } catch (IOException e) {
+            LOGGER.error("Failed to write Policy file: {}", filePath, e);
+        }
+        return false;
+    }
+
+    /**
+     * Registers a running Planner so that close() can stop it before the database is closed
+     *
+     * @param planner Planner whose thread has been started
+     */
+    void registerPlanner(Planner planner) {
+        planners.add(planner);
+    }
+
+    /**
+     * Removes a stopped Planner from the planners stopped by close()
+     *
+     * @param planner Planner which has been stopped
+     */
+    void unregisterPlanner(Planner planner) {
+        planners.remove(planner);
+    }
+
+    /**
+     * Queries the best action of serialKey and remembers it for getLastKnownAction(), evicting the least
+     * recently used state once lastKnownActionCapacity states are held
+     *
+     * @param serialKey User-defined String representation of Agent's state
+     * @return Index of the best possible action to take in state serialKey
+     * @throws SQLException Thrown by improper argument or interrupted connection
+     */
+    private int lookupMaxQIndex(String serialKey) throws SQLException {
+        int actionInt = db.getMaxQAction(serialKey);
+        lastKnownActionsLock.lock();
+        try {
+            lastKnownActions.put(serialKey, actionInt);
+        } finally {
+            lastKnownActionsLock.unlock();
+        }
+        return actionInt;
+    }
+
     /**
      * Closes the database. Call once all reads and writes have been finalized
      */
     void close() {
+        for (Planner planner : planners) {
+            planner.stop();
+        }
         isShuttingDown.set(true);
+        lookupExecutor.shutdownNow();
         reentrantLock.lock();
         try {
             db.close();
@@ -0,0 +1,15 @@
+package hepker.ai;
+
+/**
+ * Strategy Agent uses when a deadline-bounded getActionInt() cannot read the Q-table in time.
+ * Set with agentObject.setDeadlineFallback().<br>
+ *      - CACHED_ACTION: Best-known action from the last successful lookup of the state, else the
+ *        default action<br>
+ *      - EXPLORE: Random action, as if Agent had chosen to explore<br>
+ *      - DEFAULT_ACTION: The action set with agentObject.setDefaultAction()<br>
+ */
+public enum DeadlineFallback {
+    CACHED_ACTION,
+    EXPLORE,
+    DEFAULT_ACTION
+}
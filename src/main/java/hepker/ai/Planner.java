@@ -0,0 +1,603 @@
+package hepker.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background prioritized-sweeping planner. Records a deterministic model of every real transition
+ * (state, action -> next state, reward) in primitive arrays, then replays the transitions with the
+ * largest Bellman error on a daemon thread. Planned Q-values are queued to the shared Q-table through
+ * DataManager, exactly as Agent's own updates are.<br>
+ * The thread works in short slices and sleeps between them so that it stays within cpuBudget, the
+ * fraction of one core it may occupy.<br>
+ * Each pair holds one Q-value per (state, action). Pairs are seeded from the SQLite row Agent reads
+ * for each next state, and a seeded pair becomes modelled once a real transition is recorded for it.
+ * From then on its planner estimate replaces its seed, and later rows only refresh unmodelled pairs.
+ * The value of a state is the maximum over all of its pairs.<br>
+ * The model holds at most maxPairs pairs and maxPairs states. Once either limit is reached, transitions
+ * and seeds that would need a new pair or state are ignored. Pairs already in the model keep being
+ * updated and planned.<br>
+ * Planners are registered with DataManager, which stops them before closing the database.
+ */
+final class Planner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Planner.class);
+    private static final long SLICE_NANOS = 1_000_000L;
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Agent agent;
+    private final DataManager dataManager;
+    private final double cpuBudget;
+    private final double priorityThreshold;
+    private final int maxPairs;
+    private final ReentrantLock reentrantLock;
+    private final Condition workAvailable;
+    private final AtomicBoolean isRunning;
+    private final AtomicLong updateCount;
+    private final Thread worker;
+
+    private final HashMap<String, Integer> stateIds;
+    private final LongIntMap pairIds;
+    private final PriorityHeap queue;
+    private String[] stateKeys;
+    private int[] stateFirstPair;
+    private int[] stateFirstPredecessor;
+    private int stateCount;
+    private int[] pairState;
+    private int[] pairAction;
+    private int[] pairNext;
+    private int[] pairSibling;
+    private int[] pairNextPredecessor;
+    private double[] pairReward;
+    private double[] pairQ;
+    private int pairCount;
+    private boolean isFull;
+
+    /**
+     * Constructor which is exclusively called by Agent.startPlanner(). Planning begins on start()
+     *
+     * @param inputAgent Agent whose gamma and alpha are used for planned updates
+     * @param inputDataManager Shared DataManager planned Q-values are queued to
+     * @param inputCpuBudget Fraction (0.0, 1.0] of one core the planning thread may occupy
+     * @param inputPriorityThreshold Minimum Bellman error for a transition to be queued for planning.
+     *                               Must be greater than 0.0
+     * @param inputMaxPairs Maximum number of pairs, and of states, held by the model
+     */
+    Planner(Agent inputAgent, DataManager inputDataManager, double inputCpuBudget, double inputPriorityThreshold,
+            int inputMaxPairs) {
+        if (!(inputCpuBudget > 0.0 && inputCpuBudget <= 1.0)) {
+            throw new IllegalArgumentException("cpuBudget must be in (0.0, 1.0], was " + inputCpuBudget);
+        }
+        if (!(inputPriorityThreshold > 0.0)) {
+            throw new IllegalArgumentException("priorityThreshold must be greater than 0.0, was "
+                    + inputPriorityThreshold);
+        }
+        if (inputMaxPairs < 1) {
+            throw new IllegalArgumentException("maxPairs must be at least 1, was " + inputMaxPairs);
+        }
+        this.agent = inputAgent;
+        this.dataManager = inputDataManager;
+        this.cpuBudget = inputCpuBudget;
+        this.priorityThreshold = inputPriorityThreshold;
+        this.maxPairs = inputMaxPairs;
+        this.reentrantLock = new ReentrantLock();
+        this.workAvailable = reentrantLock.newCondition();
+        this.isRunning = new AtomicBoolean(false);
+        this.updateCount = new AtomicLong();
+        this.worker = new Thread(this::runPlanningLoop, "jql-planner");
+        this.worker.setDaemon(true);
+
+        this.stateIds = new HashMap<>();
+        this.pairIds = new LongIntMap(INITIAL_CAPACITY);
+        this.queue = new PriorityHeap(INITIAL_CAPACITY);
+        this.stateKeys = new String[INITIAL_CAPACITY];
+        this.stateFirstPair = new int[INITIAL_CAPACITY];
+        this.stateFirstPredecessor = new int[INITIAL_CAPACITY];
+        this.pairState = new int[INITIAL_CAPACITY];
+        this.pairAction = new int[INITIAL_CAPACITY];
+        this.pairNext = new int[INITIAL_CAPACITY];
+        this.pairSibling = new int[INITIAL_CAPACITY];
+        this.pairNextPredecessor = new int[INITIAL_CAPACITY];
+        this.pairReward = new double[INITIAL_CAPACITY];
+        this.pairQ = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Starts the planning thread
+     */
+    void start() {
+        if (isRunning.compareAndSet(false, true)) {
+            dataManager.registerPlanner(this);
+            worker.start();
+            LOGGER.info("Planner started with cpuBudget {}", cpuBudget);
+        }
+    }
+
+    /**
+     * Stops the planning thread and waits for it to finish its current update
+     */
+    void stop() {
+        if (!isRunning.compareAndSet(true, false)) {
+            return;
+        }
+        dataManager.unregisterPlanner(this);
+        reentrantLock.lock();
+        try {
+            workAvailable.signalAll();
+        } finally {
+            reentrantLock.unlock();
+        }
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("Planner stopped after {} updates", updateCount.get());
+    }
+
+    /**
+     * Getter for the number of Q-value updates performed by the planning thread
+     *
+     * @return Number of planned updates
+     */
+    long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * Records a real transition into the model and queues it, and every modelled predecessor of its
+     * state, by Bellman error. Ignored if it would need a new pair or state once the model is full
+     *
+     * @param stateKey State in which the action was taken
+     * @param actionInt Index of the action taken
+     * @param stateKeyPrime Post-action state
+     * @param reward Reward received for the action
+     * @param updatedQ Q-value of the action after Agent's own update
+     * @param qValuesPrime Q-values of stateKeyPrime read from SQLite by Agent, indexed by action with
+     *                     NaN for actions without a row, or null if not read
+     */
+    void recordTransition(String stateKey, int actionInt, String stateKeyPrime, double reward, double updatedQ,
+                          double[] qValuesPrime) {
+        if (!isRunning.get()) {
+            return;
+        }
+        reentrantLock.lock();
+        try {
+            Integer knownState = stateIds.get(stateKey);
+            Integer knownNext = stateIds.get(stateKeyPrime);
+            int newStates = (knownState == null ? 1 : 0)
+                    + (knownNext == null && !stateKeyPrime.equals(stateKey) ? 1 : 0);
+            boolean isNewPair = knownState == null || pairIds.get(pairKey(knownState, actionInt)) == NONE;
+            if (stateCount + newStates > maxPairs || (isNewPair && pairCount >= maxPairs)) {
+                reportFull();
+                return;
+            }
+            int state = internState(stateKey);
+            int next = internState(stateKeyPrime);
+            seedPairs(next, qValuesPrime);
+            long pairKey = pairKey(state, actionInt);
+            int pair = pairIds.get(pairKey);
+            if (pair == NONE) {
+                pair = addPair(state, actionInt);
+            } else if (pairNext[pair] != NONE && pairNext[pair] != next) {
+                unlinkPredecessor(pair);
+            }
+            if (pairNext[pair] != next) {
+                pairNext[pair] = next;
+                pairNextPredecessor[pair] = stateFirstPredecessor[next];
+                stateFirstPredecessor[next] = pair;
+            }
+            pairReward[pair] = reward;
+            pairQ[pair] = updatedQ;
+
+            prioritize(pair);
+            prioritizePredecessors(state);
+            if (!queue.isEmpty()) {
+                workAvailable.signal();
+            }
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
+
+    /**
+     * Body of the planning thread. Performs updates for one slice, then sleeps long enough to honour
+     * cpuBudget
+     */
+    private void runPlanningLoop() {
+        try {
+            while (isRunning.get()) {
+                awaitWork();
+                long sliceStart = System.nanoTime();
+                while (isRunning.get() && System.nanoTime() - sliceStart < SLICE_NANOS && planOnce()) {
+                    updateCount.incrementAndGet();
+                }
+                long elapsed = System.nanoTime() - sliceStart;
+                if (cpuBudget < 1.0) {
+                    TimeUnit.NANOSECONDS.sleep((long) (elapsed * (1.0 - cpuBudget) / cpuBudget));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.error("Planner thread terminated unexpectedly", e);
+        }
+    }
+
+    /**
+     * Blocks the planning thread until a transition is queued or the planner is stopped
+     *
+     * @throws InterruptedException Thrown when the planner is stopped while waiting
+     */
+    private void awaitWork() throws InterruptedException {
+        reentrantLock.lock();
+        try {
+            while (isRunning.get() && queue.isEmpty()) {
+                workAvailable.await();
+            }
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a Q-learning update to the queued transition with the largest Bellman error, then
+     * re-prioritizes that transition and the predecessors of its state
+     *
+     * @return True if an update was made, false if the queue was empty
+     */
+    private boolean planOnce() {
+        String stateKey;
+        int actionInt;
+        double updatedQ;
+        reentrantLock.lock();
+        try {
+            int pair = queue.poll();
+            if (pair == NONE) {
+                return false;
+            }
+            double target = pairReward[pair] + agent.getGamma() * maxQ(pairNext[pair]);
+            updatedQ = pairQ[pair] + agent.getAlpha() * (target - pairQ[pair]);
+            pairQ[pair] = updatedQ;
+            stateKey = stateKeys[pairState[pair]];
+            actionInt = pairAction[pair];
+            prioritize(pair);
+            prioritizePredecessors(pairState[pair]);
+        } finally {
+            reentrantLock.unlock();
+        }
+        dataManager.queueDataToCache(stateKey, actionInt, updatedQ);
+        return true;
+    }
+
+    /**
+     * Queues pair if it is modelled and its Bellman error exceeds priorityThreshold
+     *
+     * @param pair Id of a state-action pair
+     */
+    private void prioritize(int pair) {
+        if (pairNext[pair] == NONE) {
+            return;
+        }
+        double bellmanError = Math.abs(pairReward[pair] + agent.getGamma() * maxQ(pairNext[pair]) - pairQ[pair]);
+        if (bellmanError > priorityThreshold) {
+            queue.raise(pair, bellmanError);
+        }
+    }
+
+    /**
+     * Re-prioritizes every modelled pair leading into state
+     *
+     * @param state Id of the state whose value changed
+     */
+    private void prioritizePredecessors(int state) {
+        for (int pred = stateFirstPredecessor[state]; pred != NONE; pred = pairNextPredecessor[pred]) {
+            prioritize(pred);
+        }
+    }
+
+    /**
+     * Maximum Q-value over every pair of state, modelled or seeded
+     *
+     * @param state Id of the state
+     * @return Best known Q-value in state, or 0.0 if the state has no pairs
+     */
+    private double maxQ(int state) {
+        int pair = stateFirstPair[state];
+        if (pair == NONE) {
+            return 0.0;
+        }
+        double max = pairQ[pair];
+        for (pair = pairSibling[pair]; pair != NONE; pair = pairSibling[pair]) {
+            max = Math.max(max, pairQ[pair]);
+        }
+        return max;
+    }
+
+    /**
+     * Refreshes the unmodelled pairs of state from a row read from SQLite, adding pairs for new actions
+     * while the model has room. Modelled pairs keep their planner estimate
+     *
+     * @param state Id of the state the row was read for
+     * @param qValues Q-values indexed by action, NaN for actions without a row, or null if not read
+     */
+    private void seedPairs(int state, double[] qValues) {
+        if (qValues == null) {
+            return;
+        }
+        for (int actionInt = 0; actionInt < qValues.length; actionInt++) {
+            if (Double.isNaN(qValues[actionInt])) {
+                continue;
+            }
+            int pair = pairIds.get(pairKey(state, actionInt));
+            if (pair == NONE) {
+                if (pairCount >= maxPairs) {
+                    reportFull();
+                    continue;
+                }
+                pair = addPair(state, actionInt);
+            } else if (pairNext[pair] != NONE) {
+                continue;
+            }
+            pairQ[pair] = qValues[actionInt];
+        }
+    }
+
+    /**
+     * Logs, once per Planner, that the model has reached maxPairs
+     */
+    private void reportFull() {
+        if (!isFull) {
+            isFull = true;
+            LOGGER.warn("Planner model reached {} pairs or states; new transitions are no longer modelled", maxPairs);
+        }
+    }
+
+    /**
+     * Retrieves the id of stateKey, assigning a new one if needed. Callers check maxPairs first
+     *
+     * @param stateKey String representation of a state
+     * @return Id of the state
+     */
+    private int internState(String stateKey) {
+        Integer existing = stateIds.get(stateKey);
+        if (existing != null) {
+            return existing;
+        }
+        if (stateCount == stateKeys.length) {
+            int capacity = Math.min(stateCount * 2, maxPairs);
+            stateKeys = Arrays.copyOf(stateKeys, capacity);
+            stateFirstPair = Arrays.copyOf(stateFirstPair, capacity);
+            stateFirstPredecessor = Arrays.copyOf(stateFirstPredecessor, capacity);
+        }
+        int state = stateCount++;
+        stateKeys[state] = stateKey;
+        stateFirstPair[state] = NONE;
+        stateFirstPredecessor[state] = NONE;
+        stateIds.put(stateKey, state);
+        return state;
+    }
+
+    /**
+     * Creates a new unmodelled pair, links it into the action list of its state and indexes it.
+     * Callers check maxPairs first
+     *
+     * @param state Id of the state the action is taken in
+     * @param actionInt Index of the action
+     * @return Id of the new pair
+     */
+    private int addPair(int state, int actionInt) {
+        if (pairCount == pairState.length) {
+            int capacity = Math.min(pairCount * 2, maxPairs);
+            pairState = Arrays.copyOf(pairState, capacity);
+            pairAction = Arrays.copyOf(pairAction, capacity);
+            pairNext = Arrays.copyOf(pairNext, capacity);
+            pairSibling = Arrays.copyOf(pairSibling, capacity);
+            pairNextPredecessor = Arrays.copyOf(pairNextPredecessor, capacity);
+            pairReward = Arrays.copyOf(pairReward, capacity);
+            pairQ = Arrays.copyOf(pairQ, capacity);
+        }
+        int pair = pairCount++;
+        pairState[pair] = state;
+        pairAction[pair] = actionInt;
+        pairNext[pair] = NONE;
+        pairNextPredecessor[pair] = NONE;
+        pairSibling[pair] = stateFirstPair[state];
+        stateFirstPair[state] = pair;
+        pairIds.put(pairKey(state, actionInt), pair);
+        return pair;
+    }
+
+    /**
+     * Removes pair from the predecessor list of its current next state
+     *
+     * @param pair Id of the pair whose modelled next state is changing
+     */
+    private void unlinkPredecessor(int pair) {
+        int next = pairNext[pair];
+        if (stateFirstPredecessor[next] == pair) {
+            stateFirstPredecessor[next] = pairNextPredecessor[pair];
+        } else {
+            int pred = stateFirstPredecessor[next];
+            while (pairNextPredecessor[pred] != pair) {
+                pred = pairNextPredecessor[pred];
+            }
+            pairNextPredecessor[pred] = pairNextPredecessor[pair];
+        }
+        pairNext[pair] = NONE;
+        pairNextPredecessor[pair] = NONE;
+    }
+
+    /**
+     * Packs a state id and action index into a single map key
+     *
+     * @param state Id of the state
+     * @param actionInt Index of the action
+     * @return Packed key
+     */
+    private static long pairKey(int state, int actionInt) {
+        return ((long) state << 32) | (actionInt & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Open-addressing map from long keys to non-negative int values, avoiding boxed map entries
+     */
+    private static final class LongIntMap {
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        LongIntMap(int initialCapacity) {
+            this.keys = new long[initialCapacity];
+            this.values = new int[initialCapacity];
+            Arrays.fill(values, NONE);
+        }
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask; values[slot] != NONE; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return NONE;
+        }
+
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (values[slot] != NONE && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == NONE) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(values, NONE);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != NONE) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    /**
+     * Indexed binary max-heap of pair ids keyed by Bellman error. Each pair appears at most once, and
+     * re-queuing a pair only ever raises its priority
+     */
+    private static final class PriorityHeap {
+        private int[] heap;
+        private int[] positions;
+        private double[] priorities;
+        private int size;
+
+        PriorityHeap(int initialCapacity) {
+            this.heap = new int[initialCapacity];
+            this.positions = new int[initialCapacity];
+            this.priorities = new double[initialCapacity];
+            Arrays.fill(positions, NONE);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void raise(int pair, double priority) {
+            if (pair >= positions.length) {
+                int capacity = Math.max(pair + 1, positions.length * 2);
+                int oldLength = positions.length;
+                positions = Arrays.copyOf(positions, capacity);
+                priorities = Arrays.copyOf(priorities, capacity);
+                Arrays.fill(positions, oldLength, capacity, NONE);
+            }
+            if (positions[pair] != NONE) {
+                if (priority > priorities[pair]) {
+                    priorities[pair] = priority;
+                    siftUp(positions[pair]);
+                }
+                return;
+            }
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            priorities[pair] = priority;
+            heap[size] = pair;
+            positions[pair] = size;
+            siftUp(size++);
+        }
+
+        int poll() {
+            if (size == 0) {
+                return NONE;
+            }
+            int top = heap[0];
+            positions[top] = NONE;
+            if (--size > 0) {
+                heap[0] = heap[size];
+                positions[heap[0]] = 0;
+                siftDown(0);
+            }
+            return top;
+        }
+
+        private void siftUp(int index) {
+            int pair = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (priorities[heap[parent]] >= priorities[pair]) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                positions[heap[index]] = index;
+                index = parent;
+            }
+            heap[index] = pair;
+            positions[pair] = index;
+        }
+
+        private void siftDown(int index) {
+            int pair = heap[index];
+            int half = size >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                if (child + 1 < size && priorities[heap[child + 1]] > priorities[heap[child]]) {
+                    child++;
+                }
+                if (priorities[pair] >= priorities[heap[child]]) {
+                    break;
+                }
+                heap[index] = heap[child];
+                positions[heap[index]] = index;
+                index = child;
+            }
+            heap[index] = pair;
+            positions[pair] = index;
+        }
+    }
+}
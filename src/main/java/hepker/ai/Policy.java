@@ -0,0 +1,248 @@
+package hepker.ai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Read-only greedy policy compiled from a trained Q-table by Agent.exportPolicy(). Maps each state
+ * straight to its best-known action without touching SQLite, so inference-only services do not
+ * need to load Agent at all.<br>
+ * The file is an open-addressing hash table that is memory-mapped on load. Lookups are lock-free and
+ * allocation-free, and a single Policy may be shared between threads.<br>
+ * File layout:<br>
+ *      - header: magic, version, capacity, size (4 ints)<br>
+ *      - slots: capacity entries of (hash, keyOffset, keyLength, action) (4 ints each)<br>
+ *      - keys: UTF-16 chars of every state key, addressed by keyOffset<br>
+ */
+public final class Policy {
+    private static final int MAGIC = 0x4A514C50; // "JQLP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    private static final int SLOT_BYTES = 4 * Integer.BYTES;
+    private static final int EMPTY_SLOT = -1;
+    private static final int DEFAULT_ACTION = 0;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int size;
+    private final int keyBase;
+    private final long keyChars;
+
+    /**
+     * Private constructor. Policies are obtained with Policy.load()
+     *
+     * @param mappedBuffer Buffer holding a validated Policy file
+     */
+    private Policy(ByteBuffer mappedBuffer) {
+        this.buffer = mappedBuffer;
+        this.capacity = mappedBuffer.getInt(2 * Integer.BYTES);
+        this.size = mappedBuffer.getInt(3 * Integer.BYTES);
+        this.keyBase = HEADER_BYTES + capacity * SLOT_BYTES;
+        this.keyChars = (mappedBuffer.capacity() - keyBase) / Character.BYTES;
+    }
+
+    /**
+     * Memory-maps a Policy file written by Agent.exportPolicy(). Only the header and the length of the
+     * slot region are checked, so loading does not touch the slots and stays fast for large policies.
+     * getActionInt() guards each probe against corrupt slots; call verify() to check the whole file
+     *
+     * @param filePath Location of the Policy file
+     * @return Policy ready to answer decisions
+     * @throws IOException Thrown when the file cannot be read or is not a valid Policy file
+     */
+    public static Policy load(String filePath) throws IOException {
+        MappedByteBuffer mappedBuffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("File is too small to be a Policy: " + filePath);
+            }
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File exceeds the 2GB mappable limit of a Policy: " + filePath);
+            }
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mappedBuffer.getInt(0) != MAGIC || mappedBuffer.getInt(Integer.BYTES) != VERSION) {
+            throw new IOException("Unrecognized Policy file format: " + filePath);
+        }
+        validateHeader(mappedBuffer, filePath);
+        return new Policy(mappedBuffer);
+    }
+
+    /**
+     * Retrieves the best-known action in the given state. Mirrors Agent.getActionInt() with an epsilon
+     * of 0.0
+     *
+     * @param stateKey String representation of the state, generated the same way as during training
+     * @return Index of the best-known action, or 0 if the state was never learned or the probed
+     * slots are corrupt
+     */
+    public int getActionInt(String stateKey) {
+        int hash = spread(stateKey.hashCode());
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int slotPosition = HEADER_BYTES + slot * SLOT_BYTES;
+            int keyLength = buffer.getInt(slotPosition + 2 * Integer.BYTES);
+            if (keyLength == EMPTY_SLOT) {
+                return DEFAULT_ACTION;
+            }
+            if (buffer.getInt(slotPosition) == hash && keyLength == stateKey.length()) {
+                int keyOffset = buffer.getInt(slotPosition + Integer.BYTES);
+                if (keyOffset >= 0 && keyOffset + (long) keyLength <= keyChars && keyEquals(keyOffset, stateKey)) {
+                    return buffer.getInt(slotPosition + 3 * Integer.BYTES);
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return DEFAULT_ACTION;
+    }
+
+    /**
+     * Opt-in full integrity check. Reads every slot, so its cost grows with the size of the Policy.
+     * Checks that every slot addresses keys inside the file, that the number of used slots equals
+     * size(), and that the file ends exactly after the last key
+     *
+     * @throws IOException Thrown when the file is truncated or corrupt
+     */
+    public void verify() throws IOException {
+        long totalChars = 0;
+        int usedSlots = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int slotPosition = HEADER_BYTES + slot * SLOT_BYTES;
+            int keyOffset = buffer.getInt(slotPosition + Integer.BYTES);
+            int keyLength = buffer.getInt(slotPosition + 2 * Integer.BYTES);
+            if (keyLength == EMPTY_SLOT) {
+                continue;
+            }
+            if (keyOffset < 0 || keyLength < 0 || (long) keyOffset + keyLength > keyChars) {
+                throw new IOException("Corrupt Policy slot " + slot);
+            }
+            totalChars += keyLength;
+            usedSlots++;
+        }
+        if (usedSlots != size || keyBase + totalChars * Character.BYTES != buffer.capacity()) {
+            throw new IOException("Truncated or corrupt Policy file");
+        }
+    }
+
+    /**
+     * Getter for the number of states held by this Policy
+     *
+     * @return Number of states with a stored action
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Compiles greedy actions into a Policy file. Called by DataManager during export
+     *
+     * @param greedyActions Map of every state key to its best-known action
+     * @param filePath Location the Policy file will be written to
+     * @throws IOException Thrown when the file cannot be written or the Policy exceeds 2GB
+     */
+    static void write(Map<String, Integer> greedyActions, String filePath) throws IOException {
+        int tableCapacity = Integer.highestOneBit(Math.max(2, greedyActions.size() * 2 - 1)) << 1;
+        long totalChars = 0;
+        for (String key : greedyActions.keySet()) {
+            totalChars += key.length();
+        }
+        long totalBytes = HEADER_BYTES + (long) tableCapacity * SLOT_BYTES + totalChars * Character.BYTES;
+        if (tableCapacity <= 0 || totalBytes > Integer.MAX_VALUE) {
+            throw new IOException("Policy exceeds the 2GB mappable limit with " + greedyActions.size() + " states");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) totalBytes);
+        out.putInt(MAGIC).putInt(VERSION).putInt(tableCapacity).putInt(greedyActions.size());
+        for (int i = 0; i < tableCapacity; i++) {
+            out.putInt(0).putInt(0).putInt(EMPTY_SLOT).putInt(0);
+        }
+        int tableKeyBase = HEADER_BYTES + tableCapacity * SLOT_BYTES;
+        int keyOffset = 0;
+        int mask = tableCapacity - 1;
+        for (Map.Entry<String, Integer> entry : greedyActions.entrySet()) {
+            String key = entry.getKey();
+            int hash = spread(key.hashCode());
+            int slot = hash & mask;
+            while (out.getInt(HEADER_BYTES + slot * SLOT_BYTES + 2 * Integer.BYTES) != EMPTY_SLOT) {
+                slot = (slot + 1) & mask;
+            }
+            int slotPosition = HEADER_BYTES + slot * SLOT_BYTES;
+            out.putInt(slotPosition, hash);
+            out.putInt(slotPosition + Integer.BYTES, keyOffset);
+            out.putInt(slotPosition + 2 * Integer.BYTES, key.length());
+            out.putInt(slotPosition + 3 * Integer.BYTES, entry.getValue());
+            for (int i = 0; i < key.length(); i++) {
+                out.putChar(tableKeyBase + (keyOffset + i) * Character.BYTES, key.charAt(i));
+            }
+            keyOffset += key.length();
+        }
+
+        Path path = Paths.get(filePath);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        out.rewind();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+    }
+
+    /**
+     * Checks that capacity is a positive power of two with at least one empty slot, and that the file is
+     * long enough to hold every slot. Reads only the header
+     *
+     * @param mappedBuffer Buffer holding a Policy file with a valid magic and version
+     * @param filePath Location of the Policy file, used in error messages
+     * @throws IOException Thrown when the header is corrupt or the file is truncated
+     */
+    private static void validateHeader(ByteBuffer mappedBuffer, String filePath) throws IOException {
+        int tableCapacity = mappedBuffer.getInt(2 * Integer.BYTES);
+        int tableSize = mappedBuffer.getInt(3 * Integer.BYTES);
+        if (tableCapacity <= 0 || Integer.bitCount(tableCapacity) != 1 || tableSize < 0
+                || tableSize >= tableCapacity) {
+            throw new IOException("Corrupt Policy header (capacity " + tableCapacity + ", size " + tableSize
+                    + "): " + filePath);
+        }
+        if (HEADER_BYTES + (long) tableCapacity * SLOT_BYTES > mappedBuffer.capacity()) {
+            throw new IOException("Truncated Policy file: " + filePath);
+        }
+    }
+
+    /**
+     * Compares a stored key against stateKey char by char, avoiding any String allocation
+     *
+     * @param keyOffset Offset, in chars, of the stored key within the key region
+     * @param stateKey Key being looked up. Length must already match the stored key
+     * @return True if the stored key equals stateKey
+     */
+    private boolean keyEquals(int keyOffset, String stateKey) {
+        int position = keyBase + keyOffset * Character.BYTES;
+        for (int i = 0; i < stateKey.length(); i++) {
+            if (buffer.getChar(position + i * Character.BYTES) != stateKey.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the high bits of String.hashCode() into the low bits used for slot selection
+     *
+     * @param hashCode The cached hashCode of a state key
+     * @return Mixed hash
+     */
+    private static int spread(int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
+    }
+}
@@ -9,6 +9,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -103,6 +105,54 @@ final class QValueRepository {
         }
     }
 
+    /**
+     * Getter for every stored Q-value in state serialKey
+     *
+     * @param serialKey String representation of Agent's state
+     * @return Q-values indexed by action, NaN for actions without a row. Empty if the state has no rows
+     * @throws SQLException Thrown by improper arguments or interrupted connection
+     */
+    double[] getQValues(String serialKey) throws SQLException {
+        final String sql = "SELECT Action, QValue FROM QTable WHERE HexKey = ?";
+        double[] qValues = new double[0];
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, serialKey);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    int action = rs.getInt("Action");
+                    if (action >= qValues.length) {
+                        int oldLength = qValues.length;
+                        qValues = Arrays.copyOf(qValues, action + 1);
+                        Arrays.fill(qValues, oldLength, action, Double.NaN);
+                    }
+                    qValues[action] = rs.getDouble("QValue");
+                }
+            }
+        }
+        return qValues;
+    }
+
+    /**
+     * Retrieves the greedy action of every state stored in the Q-table. Relies on SQLite returning the
+     * bare Action column from the row holding MAX(QValue) within each HexKey group
+     *
+     * @return Map of every stored state key to the action int with the highest Q-value in that state
+     * @throws SQLException Thrown by interrupted connection
+     */
+    Map<String, Integer> getGreedyActions() throws SQLException {
+        final String sql = "SELECT HexKey, Action, MAX(QValue) FROM QTable GROUP BY HexKey";
+        Map<String, Integer> greedyActions = new LinkedHashMap<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement pstmt = connection.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                greedyActions.put(rs.getString("HexKey"), rs.getInt("Action"));
+            }
+        }
+        return greedyActions;
+    }
+
     /**
      * Safely places all cached Q-values into database
      *